@@ -25,19 +25,33 @@
 package it.iknowconsulting.adprovision;
 
 import com.zimbra.cs.account.Domain;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 public class ADConnection {
 
-    DirContext ldapContext;
+    private static final int PAGE_SIZE = 500;
+    private static final String SHOW_DELETED_OID = "1.2.840.113556.1.4.417";
+    private static final String USER_ATTRS[] = {"givenName","sn","name","sAMAccountName","userPrincipalName","mail","userAccountControl"};
+
+    LdapContext ldapContext;
     String authLdapSearchBase;
 
     public ADConnection(Domain domain) throws NamingException {
@@ -53,7 +67,7 @@ public class ADConnection {
         ldapEnv.put(Context.SECURITY_PRINCIPAL, authLdapSearchBindDn);
         ldapEnv.put(Context.SECURITY_CREDENTIALS, authLdapSearchBindPassword);
         ldapEnv.put(Context.SECURITY_PROTOCOL, "ssl");
-        ldapContext = new InitialDirContext(ldapEnv);
+        ldapContext = new InitialLdapContext(ldapEnv, null);
     }
 
     public void updatePassword(String username, String password) throws NamingException {
@@ -70,19 +84,85 @@ public class ADConnection {
     }
 
     NamingEnumeration get(String searchFilter) throws NamingException {
-        String returnedAttrs[]={"givenName","sn","name","sAMAccountName","userPrincipalName","mail","userAccountControl"};
         SearchControls searchControls = new SearchControls();
         searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        searchControls.setReturningAttributes(returnedAttrs);
+        searchControls.setReturningAttributes(USER_ATTRS);
         NamingEnumeration results = ldapContext.search(authLdapSearchBase, searchFilter, searchControls);
         return results;        
     }
+
+    List<SearchResult> getPaged(String searchFilter, String returnedAttrs[]) throws NamingException {
+        return getPaged(authLdapSearchBase, searchFilter, returnedAttrs, null);
+    }
+
+    // Paged search, so that the results are not capped by the AD MaxPageSize
+    List<SearchResult> getPaged(String searchBase, String searchFilter, String returnedAttrs[], Control control) throws NamingException {
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchControls.setReturningAttributes(returnedAttrs);
+
+        byte cookie[] = null;
+        try {
+            do {
+                Control pagedControl = new PagedResultsControl(PAGE_SIZE, cookie, Control.CRITICAL);
+                ldapContext.setRequestControls(control == null ? new Control[]{ pagedControl } : new Control[]{ pagedControl, control });
+                NamingEnumeration entries = ldapContext.search(searchBase, searchFilter, searchControls);
+                while (entries.hasMore()) {
+                    results.add((SearchResult)entries.next());
+                }
+
+                cookie = null;
+                Control controls[] = ldapContext.getResponseControls();
+                if (controls != null) {
+                    for (Control responseControl : controls) {
+                        if (responseControl instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl)responseControl).getCookie();
+                        }
+                    }
+                }
+            } while (cookie != null && cookie.length > 0);
+        } catch (IOException ex) {
+            NamingException ne = new NamingException("Unable to set paged results control");
+            ne.setRootCause(ex);
+            throw ne;
+        } finally {
+            ldapContext.setRequestControls(null);
+        }
+
+        return results;
+    }
     
     public NamingEnumeration getUsers() throws NamingException {
         String searchFilter = "(userPrincipalName=*)";
         return get(searchFilter);
     }
 
+    public List<SearchResult> getAllUsers() throws NamingException {
+        String searchFilter = "(userPrincipalName=*)";
+        return getPaged(searchFilter, USER_ATTRS);
+    }
+
+    // Deleted users are tombstones in the Deleted Objects container of the
+    // domain, only visible with the show deleted control. Reading them
+    // requires the right to list that container.
+    public List<SearchResult> getUsersDeletedSince(String namingContext, long usn) throws NamingException {
+        String searchFilter = "(&(isDeleted=TRUE)(objectClass=user)(uSNChanged>="+(usn+1)+"))";
+        String returnedAttrs[] = {"sAMAccountName"};
+        return getPaged(namingContext, searchFilter, returnedAttrs, new BasicControl(SHOW_DELETED_OID, Control.CRITICAL, null));
+    }
+
+    // uSNChanged is local to each domain controller, see getRootDSE()
+    public List<SearchResult> getUsersChangedSince(long usn) throws NamingException {
+        String searchFilter = "(&(userPrincipalName=*)(uSNChanged>="+(usn+1)+"))";
+        return getPaged(searchFilter, USER_ATTRS);
+    }
+
+    public Attributes getRootDSE() throws NamingException {
+        String returnedAttrs[] = {"dsServiceName","highestCommittedUSN","defaultNamingContext"};
+        return ldapContext.getAttributes("", returnedAttrs);
+    }
+
     public NamingEnumeration fetchUser(String uid) throws NamingException {
         String searchFilter = "(sAMAccountName="+uid+")";
         return get(searchFilter);
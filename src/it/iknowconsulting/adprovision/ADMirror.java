@@ -0,0 +1,352 @@
+/*
+   Copyright 2012 Antonio Messina (a.messina@iknowconsulting.it)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. 
+*/
+
+package it.iknowconsulting.adprovision;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+// Local on-disk copy of the AD user attributes needed for provisioning.
+// It is refreshed by ADSyncThread and used by ADProvisioning to avoid a
+// live AD search on lazy autoprovisioning.
+//
+// The mirror directory holds one small properties file per user, so that a
+// lookup reads a single file and nothing but the refresh state is kept in
+// memory:
+//   state.properties          refresh timestamps, domain controller and USN
+//   users/<sAMAccountName>    the AD attributes of the user
+//   principals/<UPN>          the sAMAccountName of the user
+public class ADMirror {
+
+    private static final long FULL_REFRESH_INTERVAL = 24L*60*60000;
+    private static final String STATE_FILE = "state.properties";
+    private static final String USERS_DIR = "users";
+    private static final String PRINCIPALS_DIR = "principals";
+
+    private static final Object MIRROR_LOCK = new Object();
+    private static volatile Properties sState = null;
+
+    private File mUsers;
+    private File mPrincipals;
+
+    private ADMirror(File users, File principals) {
+        mUsers = users;
+        mPrincipals = principals;
+    }
+
+    public static boolean isEnabled() {
+        return !LC.get("adprovision_mirror_dir").equals("");
+    }
+
+    public static int getMaxAge() {
+        int maxAge = 60;
+        try {
+            maxAge = Integer.valueOf(LC.get("adprovision_mirror_max_age"));
+        } catch (NumberFormatException nfe) {
+        }
+        return maxAge;
+    }
+
+    // Returns the AD attributes of the user, or null if the mirror is
+    // disabled, stale or does not know the user.
+    public static Attributes lookup(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        File dir = getDir();
+        if (isStale(getState(dir))) {
+            ZimbraLog.account.info("[ADMirror] Mirror is stale, ignoring it");
+            return null;
+        }
+
+        Properties values;
+        try {
+            String name = key.toLowerCase();
+            values = read(new File(new File(dir, USERS_DIR), toFileName(name)));
+            if (values == null) {
+                Properties principal = read(new File(new File(dir, PRINCIPALS_DIR), toFileName(name)));
+                if (principal != null) {
+                    values = read(new File(new File(dir, USERS_DIR), toFileName(principal.getProperty("sAMAccountName"))));
+                }
+            }
+        } catch (IOException ex) {
+            ZimbraLog.account.info("[ADMirror] Unable to read user %s from mirror: %s", key, ex);
+            return null;
+        }
+        if (values == null) {
+            return null;
+        }
+
+        Attributes attributes = new BasicAttributes(true);
+        for (Map.Entry<Object, Object> value : values.entrySet()) {
+            attributes.put((String)value.getKey(), value.getValue());
+        }
+        return attributes;
+    }
+
+    // Fetches from AD the users changed since the last refresh, or all of
+    // them once a day, and writes them to the mirror. Incremental refreshes
+    // also drop the users deleted since the last refresh. Users that only
+    // left the search base are dropped by the daily full refresh.
+    //
+    // Changes are tracked with uSNChanged, which is not replicated: a full
+    // refresh is done whenever the domain controller is not the one the
+    // last USN was read from.
+    public static void refresh(ADConnection adc) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (MIRROR_LOCK) {
+            File dir = getDir();
+            Properties current = getState(dir);
+            long now = System.currentTimeMillis();
+            long lastUSN = getLong(current, "highestCommittedUSN");
+
+            int changed = 0;
+            boolean full;
+            String server;
+            String usn;
+            String namingContext;
+            try {
+                // the USN is read before the search, so that changes made
+                // during the search are fetched again by the next refresh
+                Attributes rootDSE = adc.getRootDSE();
+                server = rootDSE.get("dsServiceName").get(0).toString();
+                usn = rootDSE.get("highestCommittedUSN").get(0).toString();
+                namingContext = rootDSE.get("defaultNamingContext").get(0).toString();
+
+                full = lastUSN == 0 || now - getLong(current, "lastFullRefresh") > FULL_REFRESH_INTERVAL;
+                if (!full && !server.equals(current.getProperty("dsServiceName"))) {
+                    ZimbraLog.account.info("[ADMirror] Domain controller changed to %s", server);
+                    full = true;
+                }
+
+                ADMirror mirror;
+                if (full) {
+                    mirror = new ADMirror(new File(dir, USERS_DIR + ".new"), new File(dir, PRINCIPALS_DIR + ".new"));
+                    deleteTree(mirror.mUsers);
+                    deleteTree(mirror.mPrincipals);
+                } else {
+                    mirror = new ADMirror(new File(dir, USERS_DIR), new File(dir, PRINCIPALS_DIR));
+                }
+                mirror.mUsers.mkdirs();
+                mirror.mPrincipals.mkdirs();
+
+                List<SearchResult> entries = full ? adc.getAllUsers() : adc.getUsersChangedSince(lastUSN);
+                for (SearchResult entry : entries) {
+                    if (mirror.put(entry.getAttributes())) {
+                        changed++;
+                    }
+                }
+
+                if (full) {
+                    replace(mirror.mUsers, new File(dir, USERS_DIR));
+                    replace(mirror.mPrincipals, new File(dir, PRINCIPALS_DIR));
+                } else {
+                    try {
+                        changed += mirror.removeAll(adc.getUsersDeletedSince(namingContext, lastUSN));
+                    } catch (NamingException ex) {
+                        ZimbraLog.account.info("[ADMirror] Unable to search deleted users, they are dropped by the daily full refresh: %s", ex);
+                    }
+                }
+            } catch (NamingException ex) {
+                ZimbraLog.account.info("[ADMirror] Unable to refresh mirror from AD: %s", ex);
+                return;
+            } catch (IOException ex) {
+                ZimbraLog.account.info("[ADMirror] Unable to write mirror: %s", ex);
+                return;
+            }
+
+            Properties state = new Properties();
+            state.setProperty("lastRefresh", Long.toString(now));
+            state.setProperty("lastFullRefresh", full ? Long.toString(now) : current.getProperty("lastFullRefresh"));
+            state.setProperty("dsServiceName", server);
+            state.setProperty("highestCommittedUSN", usn);
+            try {
+                write(new File(dir, STATE_FILE), state);
+            } catch (IOException ex) {
+                ZimbraLog.account.info("[ADMirror] Unable to save mirror state: %s", ex);
+            }
+            sState = state;
+
+            ZimbraLog.account.info("[ADMirror] %s refresh: %d users updated or removed", full ? "Full" : "Incremental", changed);
+        }
+    }
+
+    private static File getDir() {
+        return new File(LC.get("adprovision_mirror_dir"));
+    }
+
+    private static Properties getState(File dir) {
+        Properties state = sState;
+        if (state == null) {
+            synchronized (MIRROR_LOCK) {
+                if (sState == null) {
+                    try {
+                        state = read(new File(dir, STATE_FILE));
+                    } catch (IOException ex) {
+                        ZimbraLog.account.info("[ADMirror] Unable to load mirror state: %s", ex);
+                        state = null;
+                    }
+                    sState = (state != null) ? state : new Properties();
+                }
+                state = sState;
+            }
+        }
+        return state;
+    }
+
+    private static boolean isStale(Properties state) {
+        return System.currentTimeMillis() - getLong(state, "lastRefresh") > getMaxAge()*60000L;
+    }
+
+    private static long getLong(Properties state, String key) {
+        try {
+            return Long.parseLong(state.getProperty(key, "0"));
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    // Adds or updates a user.
+    private boolean put(Attributes attributes) throws NamingException, IOException {
+        Attribute sAMAccountName = attributes.get("sAMAccountName");
+        if (sAMAccountName == null) {
+            return false;
+        }
+
+        Properties values = new Properties();
+        NamingEnumeration ids = attributes.getIDs();
+        while (ids.hasMore()) {
+            String id = (String)ids.next();
+            values.setProperty(id, attributes.get(id).get(0).toString());
+        }
+
+        String name = sAMAccountName.get(0).toString().toLowerCase();
+        remove(name);
+        write(new File(mUsers, toFileName(name)), values);
+
+        String userPrincipalName = values.getProperty("userPrincipalName");
+        if (userPrincipalName != null) {
+            Properties principal = new Properties();
+            principal.setProperty("sAMAccountName", name);
+            write(new File(mPrincipals, toFileName(userPrincipalName.toLowerCase())), principal);
+        }
+        return true;
+    }
+
+    private boolean remove(String name) throws IOException {
+        File file = new File(mUsers, toFileName(name));
+        Properties previous = read(file);
+        if (previous == null) {
+            return false;
+        }
+
+        String userPrincipalName = previous.getProperty("userPrincipalName");
+        if (userPrincipalName != null) {
+            new File(mPrincipals, toFileName(userPrincipalName.toLowerCase())).delete();
+        }
+        file.delete();
+        return true;
+    }
+
+    // Removes the given users. Returns the number of removed users.
+    private int removeAll(List<SearchResult> entries) throws NamingException, IOException {
+        int removed = 0;
+        for (SearchResult entry : entries) {
+            Attribute sAMAccountName = entry.getAttributes().get("sAMAccountName");
+            if (sAMAccountName != null && remove(sAMAccountName.get(0).toString().toLowerCase())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static String toFileName(String name) throws UnsupportedEncodingException {
+        return URLEncoder.encode(name, "UTF-8");
+    }
+
+    private static Properties read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties values = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            values.load(in);
+        } finally {
+            in.close();
+        }
+        return values;
+    }
+
+    // Writes to a temporary file first, so that readers never see a partial file.
+    private static void write(File file, Properties values) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            values.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        File old = new File(target.getPath() + ".old");
+        deleteTree(old);
+        if (target.exists() && !target.renameTo(old)) {
+            throw new IOException("unable to rename " + target + " to " + old);
+        }
+        if (!source.renameTo(target)) {
+            throw new IOException("unable to rename " + source + " to " + target);
+        }
+        deleteTree(old);
+    }
+
+    private static void deleteTree(File file) {
+        File files[] = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
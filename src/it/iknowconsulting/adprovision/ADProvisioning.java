@@ -27,6 +27,7 @@ import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.cs.util.Zimbra;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
 
 public class ADProvisioning extends LdapProvisioning {
@@ -60,6 +61,11 @@ public class ADProvisioning extends LdapProvisioning {
         return acct;
     }
             
+    // Looks up an account without autoprovisioning it when it is missing.
+    Account getExisting(AccountBy keyType, String key) throws ServiceException {
+        return super.get(keyType, key, false);
+    }
+
     boolean isEnabled() {
         return LC.get("adprovision_sync_mode").equals("lazy");
     }
@@ -75,6 +81,17 @@ public class ADProvisioning extends LdapProvisioning {
         
         Domain defaultDomain = prov.getDomainByName(defaultDomainName);
 
+        Attributes attributes = ADMirror.lookup(key);
+        if (attributes != null) {
+            ZimbraLog.account.info("[ADProvisioning] Autoprovisioning user "+key+" from AD mirror");
+            ADUser user = ADUser.fromAttributes(attributes, defaultDomainName);
+            if (user != null) {
+                acct = user.create(prov);
+                AccountUtil.addAccountToLogContext(prov, acct.getId(), ZimbraLog.C_NAME, ZimbraLog.C_ID, null);
+            }
+            return acct;
+        }
+
         ADConnection adc;
         try {
             adc = new ADConnection(defaultDomain);
@@ -124,13 +124,19 @@ public class ADSyncThread extends Thread {
             setDefaultDomainName();
             setSyncMode();
 
-            if (isEagerModeEnabled) {
+            if (isEagerModeEnabled || isMirrorEnabled) {
                 Domain defaultDomain;
                 try {
                     defaultDomain = prov.getDomainByName(getDefaultDomainName());
                 } catch (ServiceException ex) {
                     ZimbraLog.account.info("[ADSyncThread] Default domain not found: %s", ex);
-                    return;
+                    sleep();
+                    continue;
+                }
+                if (defaultDomain == null) {
+                    ZimbraLog.account.info("[ADSyncThread] Default domain %s not found", getDefaultDomainName());
+                    sleep();
+                    continue;
                 }
 
                 ADConnection adc;
@@ -138,10 +144,17 @@ public class ADSyncThread extends Thread {
                     adc = new ADConnection(defaultDomain);
                 } catch (NamingException ex) {
                     ZimbraLog.account.info("[ADSyncThread] Unable to connect to AD: %s", ex);
-                    return;
+                    sleep();
+                    continue;
                 }
 
-                doSyncFromAD(prov, adc);
+                if (isMirrorEnabled) {
+                    ADMirror.refresh(adc);
+                }
+
+                if (isEagerModeEnabled) {
+                    doSyncFromAD(prov, adc);
+                }
             }
 
             sleep();
@@ -173,7 +186,7 @@ public class ADSyncThread extends Thread {
         try {
             while (entries.hasMore()) {
                 if (mShutdownRequested) {
-                    ZimbraLog.account.info("[ADSyncThread] Shutting down AD eager mode autoprovisioning");
+                    ZimbraLog.account.info("[ADSyncThread] Shutting down AD eager mode autoprovisioning after creating %d new users", totalNewUsers);
                     sADSyncThread = null;
                     return;
                 }
@@ -205,7 +218,12 @@ public class ADSyncThread extends Thread {
 
                 Account acct = prov.getAccountByName(sAMAccountName);
                 if (acct == null) {
-                    acct = ADUser.createAccount(entry, getDefaultDomainName());
+                    // only created accounts count toward the batch size
+                    try {
+                        acct = ADUser.createAccount(entry, getDefaultDomainName());
+                    } catch (ServiceException ex) {
+                        ZimbraLog.account.info("[ADSyncThread] Unable to create user %s: %s", userPrincipalName, ex);
+                    }
                     if (acct != null) {
                         totalNewUsers++;
                     }
@@ -248,6 +266,7 @@ public class ADSyncThread extends Thread {
     private static int sSleepInterval = 30;
     private static String sDefaultDomainName = "example.com";
     private static boolean isEagerModeEnabled = false;
+    private static boolean isMirrorEnabled = false;
     private static int sBatchSize = 10;
     
     private static void setSyncMode() {
@@ -265,6 +284,11 @@ public class ADSyncThread extends Thread {
         } else {
             isEagerModeEnabled = false;
         }
+        // the mirror is only used by lazy mode autoprovisioning
+        isMirrorEnabled = lcSyncMode.equals("lazy") && ADMirror.isEnabled();
+        if (isMirrorEnabled && getSleepInterval() >= ADMirror.getMaxAge()) {
+            ZimbraLog.account.warn("[ADSyncThread] adprovision_sleep_interval (%d min) is not lower than adprovision_mirror_max_age (%d min), the AD mirror will always be stale", getSleepInterval(), ADMirror.getMaxAge());
+        }
     }
     
     private static void setDefaultDomainName() {
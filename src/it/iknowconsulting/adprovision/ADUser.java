@@ -21,6 +21,7 @@ import com.zimbra.common.util.EmailUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Provisioning.AccountBy;
 import java.util.HashMap;
 import javax.naming.NamingException;
 import javax.naming.directory.Attributes;
@@ -28,12 +29,32 @@ import javax.naming.directory.SearchResult;
 
 public class ADUser {
 
+    private String userPrincipalName;
+    private String sAMAccountName;
+    private String alias = null;
+    private HashMap attrs = new HashMap();
+
+    private ADUser() {
+    }
+
     public static Account createAccount(SearchResult entry, String defaultDomainName) throws ServiceException {
-        Account acct = null;
-        Provisioning prov = Provisioning.getInstance();
+        ADUser user = fromEntry(entry, defaultDomainName);
+        if (user == null) {
+            return null;
+        }
+        return user.create(Provisioning.getInstance());
+    }
+
+    // Maps the AD attributes of a search result to the zimbra account that
+    // has to be created, without writing anything to zimbra.
+    static ADUser fromEntry(SearchResult entry, String defaultDomainName) {
+        return fromAttributes(entry.getAttributes(), defaultDomainName);
+    }
+
+    static ADUser fromAttributes(Attributes attributes, String defaultDomainName) {
+        ADUser user = null;
 
         try {
-            Attributes attributes = entry.getAttributes();
             String givenName = attributes.get("givenName").get(0).toString();
             String name = attributes.get("name").get(0).toString();
             String sn = "";
@@ -66,26 +87,79 @@ public class ADUser {
                 mailAccount = mailparts[0];
             }
 
-            ZimbraLog.account.info("[ADUser] Creating user: %s '%s' <%s@%s>", givenName, name, sAMAccountName, defaultDomainName);
-            HashMap attrs  = new HashMap();
-            attrs.put(Provisioning.A_givenName, givenName);
+            user = new ADUser();
+            user.userPrincipalName = userPrincipalName;
+            user.sAMAccountName = sAMAccountName;
+            user.attrs.put(Provisioning.A_givenName, givenName);
             if (!sn.equals("")) {
-                attrs.put(Provisioning.A_sn, sn);
+                user.attrs.put(Provisioning.A_sn, sn);
             }
-            attrs.put(Provisioning.A_cn, name);
-            attrs.put(Provisioning.A_displayName, name);
-            attrs.put(Provisioning.A_zimbraMailStatus, Provisioning.MAIL_STATUS_ENABLED);
-
-            acct = prov.createAccount(userPrincipalName, "AUTOPROVISIONED", attrs);
+            user.attrs.put(Provisioning.A_cn, name);
+            user.attrs.put(Provisioning.A_displayName, name);
+            user.attrs.put(Provisioning.A_zimbraMailStatus, Provisioning.MAIL_STATUS_ENABLED);
 
             if (!mailAccount.equals(sAMAccountName)) {
-                ZimbraLog.account.info("[ADUser] Creating alias <%s@%s> for user %s", mailAccount, defaultDomainName, sAMAccountName);
-                prov.addAlias(acct, mail);
-            }        
+                user.alias = mail;
+            }
         } catch (NamingException ex) {
             ZimbraLog.account.info("[ADUser] Unable to fetch attributes from AD for the user %s", ex);
         }
-        
+
+        return user;
+    }
+
+    // The alias is checked right before the account is written, so that an
+    // alias that can never be added does not prevent the account from being
+    // created.
+    private static boolean isAliasAvailable(String mail, String userPrincipalName) {
+        Provisioning prov = Provisioning.getInstance();
+
+        try {
+            String domainName = EmailUtil.getValidDomainPart(mail);
+            if (domainName == null || prov.getDomainByName(domainName) == null) {
+                ZimbraLog.account.info("[ADUser] Domain of alias <%s> for user %s is not in Zimbra, skipping alias", mail, userPrincipalName);
+                return false;
+            }
+
+            Account owner;
+            if (prov instanceof ADProvisioning) {
+                owner = ((ADProvisioning)prov).getExisting(AccountBy.name, mail);
+            } else {
+                owner = prov.get(AccountBy.name, mail);
+            }
+            if (owner != null) {
+                ZimbraLog.account.info("[ADUser] Alias <%s> for user %s already belongs to %s, skipping alias", mail, userPrincipalName, owner.getName());
+                return false;
+            }
+        } catch (ServiceException ex) {
+            ZimbraLog.account.info("[ADUser] Unable to check alias <%s> for user %s, skipping alias: %s", mail, userPrincipalName, ex);
+            return false;
+        }
+
+        return true;
+    }
+
+    // Creates the account together with its alias. If the alias can not be
+    // added the account is removed, so that the next sync retries the user.
+    Account create(Provisioning prov) throws ServiceException {
+        if (alias != null && !isAliasAvailable(alias, userPrincipalName)) {
+            alias = null;
+        }
+
+        ZimbraLog.account.info("[ADUser] Creating user: %s '%s' <%s>", attrs.get(Provisioning.A_givenName), attrs.get(Provisioning.A_cn), userPrincipalName);
+        Account acct = prov.createAccount(userPrincipalName, "AUTOPROVISIONED", attrs);
+
+        if (alias != null) {
+            ZimbraLog.account.info("[ADUser] Creating alias <%s> for user %s", alias, sAMAccountName);
+            try {
+                prov.addAlias(acct, alias);
+            } catch (ServiceException ex) {
+                ZimbraLog.account.info("[ADUser] Unable to create alias <%s>, removing user %s: %s", alias, userPrincipalName, ex);
+                prov.deleteAccount(acct.getId());
+                throw ex;
+            }
+        }
+
         return acct;
     }
 }